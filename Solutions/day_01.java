@@ -1,19 +1,106 @@
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntSupplier;
+
+/** Task counting the window increases of a slice of the readings, splitting it in two
+ * until it is small enough to be handled by a single thread. */
+class WindowCounter extends RecursiveTask<Integer> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int THRESHOLD = 1 << 16;
+
+    private final int[] data;
+    private final int width;
+    private final int start;
+    private final int end;
+
+    WindowCounter(int[] data, int width, int start, int end) {
+        this.data = data;
+        this.width = width;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    protected Integer compute() {
+        if (this.end - this.start <= THRESHOLD) {
+            // The comparison reads past the end of the slice, so windows crossing
+            // a chunk boundary are counted once, by the chunk in which they start
+            return SeaScanner.countIncreases(this.data, this.width, this.start, this.end);
+        }
+        int middle = (this.start + this.end) >>> 1;
+        WindowCounter left = new WindowCounter(this.data, this.width, this.start, middle);
+        WindowCounter right = new WindowCounter(this.data, this.width, middle, this.end);
+        left.fork();
+        return right.compute() + left.join();
+    }
+}
 
 class SeaScanner {
 
-    private List<Integer> data = new ArrayList<>();
+    // Largest region mapped at once (a single MappedByteBuffer is limited to 2GB)
+    private static final long MAPPING_SIZE = 1L << 30;
+    // Largest array length the JVM can allocate
+    private static final int MAX_READINGS = Integer.MAX_VALUE - 8;
+
+    private int[] data = new int[1024];
+    private int size = 0;
 
     SeaScanner(String path) {
-        try {
-            // Reads the file and adds its parsed contents to a list
-            List<String> lines = Files.readAllLines(Paths.get(path));
-            for (String line : lines){
-                data.add(Integer.parseInt(line));
+        // Maps the file into memory and parses the digits straight into a primitive array
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long length = channel.size();
+            long current = 0;
+            boolean negative = false;
+            boolean inNumber = false;
+            for (long start = 0; start < length; start += MAPPING_SIZE) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(MAPPING_SIZE, length - start));
+                // A number may span two regions, so the parsing state is kept between them
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b >= '0' && b <= '9') {
+                        current = current * 10 + (b - '0');
+                        // Integer.MIN_VALUE has one more unit than Integer.MAX_VALUE
+                        if (current > (negative ? 1L + Integer.MAX_VALUE : Integer.MAX_VALUE)) {
+                            throw malformed(start + buffer.position() - 1, "value out of int range");
+                        }
+                        inNumber = true;
+                    }
+                    else if (b == '-' && !negative && !inNumber) {
+                        negative = true;
+                    }
+                    else if (b == '\n' || b == '\r') {
+                        if (negative && !inNumber) {
+                            throw malformed(start + buffer.position() - 1, "sign without digits");
+                        }
+                        if (inNumber) {
+                            this.add((int) (negative ? -current : current));
+                        }
+                        current = 0;
+                        negative = false;
+                        inNumber = false;
+                    }
+                    else {
+                        throw malformed(start + buffer.position() - 1, "unexpected character '" + (char) b + "'");
+                    }
+                }
+            }
+            if (negative && !inNumber) {
+                throw malformed(length, "sign without digits");
+            }
+            if (inNumber) {
+                this.add((int) (negative ? -current : current));
             }
         }
         catch (IOException e) {
@@ -21,32 +108,61 @@ class SeaScanner {
         }
     }
 
-    public int depthIncrease () {
+    /** Creates the exception thrown when the file does not hold one integer per line. */
+    private static NumberFormatException malformed(long offset, String reason) {
+        return new NumberFormatException("Malformed reading at byte " + offset + " : " + reason);
+    }
+
+    /** Creates a scanner over readings that are already in memory. */
+    SeaScanner(int[] readings) {
+        this.data = readings.clone();
+        this.size = readings.length;
+    }
+
+    /** Counts the indexes between start and end for which data[index + width] > data[index].
+     * The loop has no branch: the sign bit of the difference is added to the total, which
+     * lets the JIT compile it to SIMD compares and a vector reduction. The difference is taken
+     * on longs so that it cannot overflow, whatever the readings. */
+    static int countIncreases(int[] data, int width, int start, int end) {
         int totalIncrease = 0;
-        int previous = (int) Double.POSITIVE_INFINITY;
+        for (int index = start; index < end; index++) {
+            totalIncrease += (int) (((long) data[index] - data[index + width]) >>> 63);
+        }
+        return totalIncrease;
+    }
 
-        // Compares each line to the previous value
-        for (int depth: data) {
-            if (depth > previous){
-                totalIncrease ++;
+    /** Appends a reading, growing the array when it is full. */
+    private void add(int depth) {
+        if (this.size == this.data.length) {
+            if (this.size == MAX_READINGS) {
+                throw new IllegalStateException("Cannot hold more than " + MAX_READINGS + " readings");
             }
-            previous = depth;
+            // Doubles the capacity without going past the largest array the JVM allows
+            this.data = Arrays.copyOf(this.data, (int) Math.min(2L * this.data.length, MAX_READINGS));
         }
-        return totalIncrease;
+        this.data[this.size++] = depth;
+    }
+
+    public int depthIncrease () {
+        // Compares each line to the previous value
+        return this.size == 0 ? 0 : countIncreases(this.data, 1, 0, this.size - 1);
     }
 
     public int slidingWindow () {
-        int totalIncrease = 0;
+        return this.slidingWindow(3);
+    }
 
-        // Takes two windows and compares the one element that differs in both
-        for (int index = 0; index < data.size() - 3; index++){
-            int window1 = data.get(index);
-            int window2 = data.get(index + 3);
-            if (window2 > window1){
-                totalIncrease++;
-            }
+    /** Counts the windows of a given width whose sum is larger than the previous window's.
+     * Two consecutive windows only differ by their first and last element, so comparing
+     * those is enough. The series is split into chunks processed in parallel. */
+    public int slidingWindow (int width) {
+        if (width < 1) {
+            throw new IllegalArgumentException("The window width must be positive : " + width);
         }
-        return totalIncrease;
+        if (this.size <= width) {
+            return 0;
+        }
+        return ForkJoinPool.commonPool().invoke(new WindowCounter(this.data, width, 0, this.size - width));
     }
 
     public static void main(String[] args) {
@@ -57,3 +173,100 @@ class SeaScanner {
         System.out.println("Answer to part 2 : " +part2);
     }
 }
+
+/** Keeps the increase counters of a live feed of readings up to date. Only the last
+ * width readings are kept, in a ring buffer, so memory does not grow with the feed. */
+class DepthMonitor {
+
+    private final int[] window;
+    private long readings = 0;
+    private long depthIncreases = 0;
+    private long windowIncreases = 0;
+
+    DepthMonitor(int width) {
+        if (width < 1) {
+            throw new IllegalArgumentException("The window width must be positive : " + width);
+        }
+        this.window = new int[width];
+    }
+
+    /** Records a new reading and updates both counters. */
+    public void onReading(int depth) {
+        int width = this.window.length;
+        int slot = (int) (this.readings % width);
+        if (this.readings > 0) {
+            int previous = this.window[(slot + width - 1) % width];
+            if (depth > previous) {
+                this.depthIncreases++;
+            }
+        }
+        // The slot about to be overwritten holds the reading from width readings ago,
+        // which is the only element that differs between the two windows
+        if (this.readings >= width && depth > this.window[slot]) {
+            this.windowIncreases++;
+        }
+        this.window[slot] = depth;
+        this.readings++;
+    }
+
+    public long getDepthIncreases() {
+        return this.depthIncreases;
+    }
+
+    public long getWindowIncreases() {
+        return this.windowIncreases;
+    }
+
+    public long getReadings() {
+        return this.readings;
+    }
+}
+
+/** Compares the throughput of the original boxed loop with the primitive kernel
+ * used by SeaScanner, on randomly generated readings. */
+class SeaScannerBenchmark {
+
+    private static final int READINGS = 50_000_000;
+    private static final int ROUNDS = 10;
+
+    /** The loop SeaScanner used to run, over a list of boxed readings. */
+    static int boxedIncrease(List<Integer> data, int width) {
+        int totalIncrease = 0;
+        for (int index = 0; index < data.size() - width; index++) {
+            if (data.get(index + width) > data.get(index)) {
+                totalIncrease++;
+            }
+        }
+        return totalIncrease;
+    }
+
+    /** Runs the task a few times to let the JIT compile it, then prints the best throughput. */
+    static void measure(String name, IntSupplier task) {
+        long best = Long.MAX_VALUE;
+        int result = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            result = task.getAsInt();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double perSecond = READINGS / (best / 1e9) / 1e6;
+        System.out.printf("%-22s %8.1f M readings/s (result %d)%n", name, perSecond, result);
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(2021);
+        int[] readings = new int[READINGS];
+        for (int i = 0; i < READINGS; i++) {
+            readings[i] = random.nextInt(10_000);
+        }
+        List<Integer> boxed = new ArrayList<>(READINGS);
+        for (int depth : readings) {
+            boxed.add(depth);
+        }
+        SeaScanner scanner = new SeaScanner(readings);
+
+        measure("boxed loop", () -> boxedIncrease(boxed, 3));
+        measure("primitive kernel", () -> SeaScanner.countIncreases(readings, 3, 0, READINGS - 3));
+        measure("parallel kernel", () -> scanner.slidingWindow(3));
+    }
+}
@@ -1,42 +1,237 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
-class DirectionData {
-    private final String direction;
-    private final int distance;
+/** Effect of a run of commands on a submarine following the aim-based model, assuming
+ * it starts with an aim of zero. Starting with an aim a instead only adds a * position
+ * to the depth, so summaries of consecutive runs can be combined in any grouping. */
+class MovementSummary {
 
-    public DirectionData(String dir, int dis) {
-        this.direction = dir;
-        this.distance = dis;
+    static final MovementSummary EMPTY = new MovementSummary(0, 0, 0);
+
+    private final long position;
+    private final long depth;
+    private final long aim;
+
+    MovementSummary(long position, long depth, long aim) {
+        this.position = position;
+        this.depth = depth;
+        this.aim = aim;
+    }
+
+    /** Returns the summary of this run followed by the next one. */
+    public MovementSummary combine(MovementSummary next) {
+        return new MovementSummary(this.position + next.position,
+                this.depth + next.depth + this.aim * next.position,
+                this.aim + next.aim);
+    }
+
+    public long getPosition() {
+        return this.position;
     }
 
-    public String getDirection() {
-        return this.direction;
+    public long getDepth() {
+        return this.depth;
     }
 
-    public int getDistance() {
-        return this.distance;
+    public long getAim() {
+        return this.aim;
     }
 }
 
+/** Task summarising a slice of the commands, splitting it in two until it is small
+ * enough to be handled by a single thread. */
+class AimReducer extends RecursiveTask<MovementSummary> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int THRESHOLD = 1 << 16;
+
+    private final byte[] opcodes;
+    private final int[] distances;
+    private final int start;
+    private final int end;
+
+    AimReducer(byte[] opcodes, int[] distances, int start, int end) {
+        this.opcodes = opcodes;
+        this.distances = distances;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    protected MovementSummary compute() {
+        if (this.end - this.start <= THRESHOLD) {
+            return Submarine.summarise(this.opcodes, this.distances, this.start, this.end);
+        }
+        int middle = (this.start + this.end) >>> 1;
+        AimReducer left = new AimReducer(this.opcodes, this.distances, this.start, middle);
+        AimReducer right = new AimReducer(this.opcodes, this.distances, middle, this.end);
+        left.fork();
+        MovementSummary second = right.compute();
+        return left.join().combine(second);
+    }
+}
+
+/** Index of the state of the submarine every interval commands, so that the state after
+ * any command can be found by replaying at most interval commands. The aim of the second
+ * model is the depth of the first one, so the index answers both. */
+class PositionIndex {
+
+    // Fingerprint of a log without any command (the FNV-1a offset basis)
+    static final long EMPTY_FINGERPRINT = 0xCBF29CE484222325L;
+
+    private final byte[] opcodes;
+    private final int[] distances;
+    private final int size;
+    // Hash of the commands, computed while the log was read
+    private final long fingerprint;
+    private final int interval;
+    // Checkpoint j is the state after j * interval commands
+    private final long[] positions;
+    private final long[] depths;
+    private final long[] aims;
+
+    /** Builds the index by replaying the commands once. */
+    PositionIndex(byte[] opcodes, int[] distances, int size, long fingerprint, int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("The checkpoint interval must be positive : " + interval);
+        }
+        this.opcodes = opcodes;
+        this.distances = distances;
+        this.size = size;
+        this.fingerprint = fingerprint;
+        this.interval = interval;
+        int checkpoints = size / interval + 1;
+        this.positions = new long[checkpoints];
+        this.depths = new long[checkpoints];
+        this.aims = new long[checkpoints];
+        MovementSummary state = MovementSummary.EMPTY;
+        for (int j = 1; j < checkpoints; j++) {
+            state = state.combine(Submarine.summarise(opcodes, distances, (j - 1) * interval, j * interval));
+            this.positions[j] = state.getPosition();
+            this.depths[j] = state.getDepth();
+            this.aims[j] = state.getAim();
+        }
+    }
+
+    /** Reads an index saved next to a log. Throws an IOException if it was built from
+     * a different log (another number of commands or other commands) or is inconsistent.
+     * The commands are not hashed again : the fingerprint of the log is given. */
+    PositionIndex(byte[] opcodes, int[] distances, int size, long fingerprint, String file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(file))))) {
+            int savedSize = in.readInt();
+            if (savedSize != size) {
+                throw new IOException("The index in " + file + " covers " + savedSize + " commands instead of " + size);
+            }
+            if (in.readLong() != fingerprint) {
+                throw new IOException("The index in " + file + " was built from other commands");
+            }
+            this.opcodes = opcodes;
+            this.distances = distances;
+            this.size = size;
+            this.fingerprint = fingerprint;
+            this.interval = in.readInt();
+            int checkpoints = in.readInt();
+            if (this.interval < 1 || checkpoints != size / this.interval + 1) {
+                throw new IOException("The index in " + file + " has " + checkpoints
+                        + " checkpoints for an interval of " + this.interval);
+            }
+            this.positions = new long[checkpoints];
+            this.depths = new long[checkpoints];
+            this.aims = new long[checkpoints];
+            for (int j = 0; j < checkpoints; j++) {
+                this.positions[j] = in.readLong();
+                this.depths[j] = in.readLong();
+                this.aims[j] = in.readLong();
+            }
+        }
+    }
+
+    /** Adds a command to a fingerprint (FNV-1a over each opcode and distance), so that an
+     * index saved for another log is recognised even if it has the same number of commands. */
+    static long fingerprint(long hash, byte opcode, int distance) {
+        hash = (hash ^ opcode) * 0x100000001B3L;
+        return (hash ^ distance) * 0x100000001B3L;
+    }
+
+    /** Writes the checkpoints to a file, so the index does not have to be rebuilt. */
+    public void save(String file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(Paths.get(file))))) {
+            out.writeInt(this.size);
+            out.writeLong(this.fingerprint);
+            out.writeInt(this.interval);
+            out.writeInt(this.positions.length);
+            for (int j = 0; j < this.positions.length; j++) {
+                out.writeLong(this.positions[j]);
+                out.writeLong(this.depths[j]);
+                out.writeLong(this.aims[j]);
+            }
+        }
+    }
+
+    /** Returns the state of the submarine after the first n commands. */
+    public MovementSummary stateAfter(int n) {
+        if (n < 0 || n > this.size) {
+            throw new IndexOutOfBoundsException("No command " + n + " in a log of " + this.size + " commands");
+        }
+        int j = n / this.interval;
+        MovementSummary checkpoint = new MovementSummary(this.positions[j], this.depths[j], this.aims[j]);
+        return checkpoint.combine(Submarine.summarise(this.opcodes, this.distances, j * this.interval, n));
+    }
+
+    public int getInterval() {
+        return this.interval;
+    }
+}
 
 class Submarine {
 
+    // Opcodes of the compiled commands
+    static final byte FORWARD = 0;
+    static final byte DOWN = 1;
+    static final byte UP = 2;
+    static final byte NO_MATCH = 3;
+
+    // Largest array length the JVM can allocate
+    private static final int MAX_COMMANDS = Integer.MAX_VALUE - 8;
+
+    // How much each opcode moves the position and the depth (or aim) per unit of distance,
+    // which lets the movement loops run without branching on the command
+    private static final int[] POSITION_STEP = {1, 0, 0, 0};
+    private static final int[] DEPTH_STEP = {0, 1, -1, 0};
+
     private int depth = 0;
     private int position = 0;
     private int aim = 0;
-    private final List<DirectionData> directions = new ArrayList<>();
+    // The commands are stored as two parallel arrays instead of one object per line
+    private byte[] opcodes = new byte[1024];
+    private int[] distances = new int[1024];
+    private int size = 0;
+    // Fingerprint of the commands read so far, used to check a saved index
+    private long fingerprint = PositionIndex.EMPTY_FINGERPRINT;
 
     public void giveDirections(String file){
-        try {
-            // Reads the file and adds its parsed contents to a list
-            List<String> lines = Files.readAllLines(Paths.get(file));
-            for (String line : lines) {
-                String[] data = line.split("\s");
-                directions.add(new DirectionData(data[0], Integer.parseInt(data[1])));
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file))) {
+            // Reads the file and compiles each line into an opcode and a distance
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    // The keyword and the distance may be separated by any run of whitespace
+                    String[] command = line.strip().split("\\s+");
+                    if (command.length != 2) {
+                        throw new IllegalArgumentException("Malformed command : " + line);
+                    }
+                    this.addDirection(compile(command[0]), Integer.parseInt(command[1]));
+                }
             }
         }
         catch (IOException e) {
@@ -44,31 +239,109 @@ class Submarine {
         }
     }
 
-    public int moveSubmarinePart1() {
-        for (DirectionData direction : this.directions){
-            switch (direction.getDirection()) {
-                case "forward" -> this.position += direction.getDistance();
-                case "down" -> this.depth += direction.getDistance();
-                case "up" -> this.depth -= direction.getDistance();
-                default -> System.out.println("no match");
+    /** Gives the opcode of a command from its keyword. */
+    static byte compile(String keyword) {
+        return switch (keyword) {
+            case "forward" -> FORWARD;
+            case "down" -> DOWN;
+            case "up" -> UP;
+            default -> {
+                System.out.println("no match");
+                yield NO_MATCH;
             }
+        };
+    }
+
+    /** Appends a command, growing the arrays when they are full. */
+    private void addDirection(byte opcode, int distance) {
+        if (this.size == this.opcodes.length) {
+            if (this.size == MAX_COMMANDS) {
+                throw new IllegalStateException("Cannot hold more than " + MAX_COMMANDS + " commands");
+            }
+            // Doubles the capacity without going past the largest array the JVM allows
+            int capacity = (int) Math.min(2L * this.size, MAX_COMMANDS);
+            this.opcodes = Arrays.copyOf(this.opcodes, capacity);
+            this.distances = Arrays.copyOf(this.distances, capacity);
+        }
+        this.opcodes[this.size] = opcode;
+        this.distances[this.size] = distance;
+        this.size++;
+        this.fingerprint = PositionIndex.fingerprint(this.fingerprint, opcode, distance);
+    }
+
+    public int moveSubmarinePart1() {
+        for (int i = 0; i < this.size; i++){
+            int opcode = this.opcodes[i];
+            int distance = this.distances[i];
+            this.position += POSITION_STEP[opcode] * distance;
+            this.depth += DEPTH_STEP[opcode] * distance;
         }
         return this.depth * this.position;
     }
 
     public int moveSubmarinePart2() {
-        for (DirectionData direction : this.directions){
-            switch (direction.getDirection()) {
-                case "forward" -> {
-                    this.position += direction.getDistance();
-                    this.depth += this.aim * direction.getDistance();
+        for (int i = 0; i < this.size; i++){
+            int opcode = this.opcodes[i];
+            int forward = POSITION_STEP[opcode] * this.distances[i];
+            this.aim += DEPTH_STEP[opcode] * this.distances[i];
+            this.position += forward;
+            this.depth += this.aim * forward;
+        }
+        return this.depth * this.position;
+    }
+
+    /** Summarises the commands between start and end, starting with an aim of zero. */
+    static MovementSummary summarise(byte[] opcodes, int[] distances, int start, int end) {
+        long position = 0;
+        long depth = 0;
+        long aim = 0;
+        for (int i = start; i < end; i++){
+            int opcode = opcodes[i];
+            long forward = (long) POSITION_STEP[opcode] * distances[i];
+            aim += (long) DEPTH_STEP[opcode] * distances[i];
+            position += forward;
+            depth += aim * forward;
+        }
+        return new MovementSummary(position, depth, aim);
+    }
+
+    /** Evaluates the aim-based model on all cores without changing the submarine's state.
+     * The final position and depth are kept as longs so long logs do not overflow. */
+    public MovementSummary moveSubmarinePart2Parallel() {
+        if (this.size == 0) {
+            return MovementSummary.EMPTY;
+        }
+        return ForkJoinPool.commonPool().invoke(new AimReducer(this.opcodes, this.distances, 0, this.size));
+    }
+
+    /** Builds an index with a checkpoint every interval commands. */
+    public PositionIndex buildIndex(int interval) {
+        return new PositionIndex(this.opcodes, this.distances, this.size, this.fingerprint, interval);
+    }
+
+    /** Loads the index stored next to the log file, or builds and saves it if there is
+     * none or if it no longer matches the log. */
+    public PositionIndex loadIndex(String file, int interval) {
+        String indexFile = file + ".idx";
+        if (Files.exists(Paths.get(indexFile))) {
+            try {
+                PositionIndex index = new PositionIndex(this.opcodes, this.distances, this.size, this.fingerprint, indexFile);
+                if (index.getInterval() == interval) {
+                    return index;
                 }
-                case "down" -> this.aim += direction.getDistance();
-                case "up" -> this.aim -= direction.getDistance();
-                default -> System.out.println("no match");
+            }
+            catch (IOException e) {
+                // A stale or damaged index is expected after the log changes : it is rebuilt below
             }
         }
-        return this.depth * this.position;
+        PositionIndex index = this.buildIndex(interval);
+        try {
+            index.save(indexFile);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        return index;
     }
 
     public static void main(String[] args) {
@@ -1,93 +1,336 @@
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.Collectors;
-import static java.lang.Math.abs;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/** Counts the 1s in each column of a stream of packed rows. The rows are buffered in
+ * blocks of 64, and each block is transposed so that every column becomes a single
+ * word whose bits can be counted at once. */
+class ColumnCounter {
+
+    private final int width;
+    private final int wordsPerRow;
+    // block[w * 64 + r] holds word w of the r-th buffered row
+    private final long[] block;
+    private final long[] counts;
+    private int buffered = 0;
+
+    ColumnCounter(int width) {
+        this.width = width;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.block = new long[this.wordsPerRow * 64];
+        this.counts = new long[width];
+    }
+
+    /** Adds the row starting at the given offset of an array of packed rows. */
+    public void addRow(long[] rows, int offset) {
+        for (int w = 0; w < this.wordsPerRow; w++) {
+            this.block[w * 64 + this.buffered] = rows[offset + w];
+        }
+        if (++this.buffered == 64) {
+            this.flush();
+        }
+    }
+
+    /** Counts the bits of the buffered rows, one column at a time. */
+    private void flush() {
+        for (int w = 0; w < this.wordsPerRow; w++) {
+            transpose(this.block, w * 64);
+            for (int c = 0; c < 64 && w * 64 + c < this.width; c++) {
+                this.counts[w * 64 + c] += Long.bitCount(this.block[w * 64 + c]);
+            }
+        }
+        Arrays.fill(this.block, 0);
+        this.buffered = 0;
+    }
+
+    /** Transposes the 64x64 bit matrix starting at the given offset, by swapping blocks
+     * of 32, 16, ..., 1 bits (bit 63 being the first column). */
+    static void transpose(long[] a, int offset) {
+        long m = 0x00000000FFFFFFFFL;
+        for (int j = 32; j != 0; j >>= 1, m ^= (m << j)) {
+            for (int k = 0; k < 64; k = ((k | j) + 1) & ~j) {
+                long t = (a[offset + k] ^ (a[offset + k + j] >>> j)) & m;
+                a[offset + k] ^= t;
+                a[offset + k + j] ^= (t << j);
+            }
+        }
+    }
+
+    /** Adds the counts of another counter to this one. */
+    public void merge(ColumnCounter other) {
+        other.flush();
+        for (int i = 0; i < this.width; i++) {
+            this.counts[i] += other.counts[i];
+        }
+    }
+
+    /** Returns the number of 1s in each column, from left to right. */
+    public long[] getCounts() {
+        this.flush();
+        return this.counts.clone();
+    }
+}
+
+/** Task counting the column bits of a range of rows of a report file, splitting it in two
+ * until it is small enough to be mapped and counted by a single thread. Every row has the
+ * same length, so the position of a row in the file is known without reading it. */
+class ReportChunk extends RecursiveTask<ColumnCounter> {
+
+    private static final long serialVersionUID = 1L;
+
+    // Number of bytes mapped by a single task
+    private static final long CHUNK_SIZE = 1L << 24;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int stride;
+    private final long firstRow;
+    private final long lastRow;
+
+    ReportChunk(FileChannel channel, int width, int stride, long firstRow, long lastRow) {
+        this.channel = channel;
+        this.width = width;
+        this.stride = stride;
+        this.firstRow = firstRow;
+        this.lastRow = lastRow;
+    }
+
+    @Override
+    protected ColumnCounter compute() {
+        if ((this.lastRow - this.firstRow) * this.stride > CHUNK_SIZE) {
+            long middle = (this.firstRow + this.lastRow) >>> 1;
+            ReportChunk left = new ReportChunk(this.channel, this.width, this.stride, this.firstRow, middle);
+            ReportChunk right = new ReportChunk(this.channel, this.width, this.stride, middle, this.lastRow);
+            left.fork();
+            ColumnCounter counter = right.compute();
+            counter.merge(left.join());
+            return counter;
+        }
+        ColumnCounter counter = new ColumnCounter(this.width);
+        long[] row = new long[(this.width + 63) >>> 6];
+        try {
+            long start = this.firstRow * this.stride;
+            long length = Math.min((this.lastRow - this.firstRow) * this.stride, this.channel.size() - start);
+            MappedByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            for (long r = this.firstRow; r < this.lastRow; r++) {
+                int offset = (int) ((r - this.firstRow) * this.stride);
+                Arrays.fill(row, 0);
+                for (int i = 0; i < this.width; i++) {
+                    if (buffer.get(offset + i) == '1') {
+                        row[i >>> 6] |= 1L << (63 - (i & 63));
+                    }
+                }
+                counter.addRow(row, 0);
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return counter;
+    }
+}
 
 class Submarine {
 
-    private final List<String> diagnosticReport = new ArrayList<>();
+    // Widest rows whose two ratings always have a product that fits in a long
+    static final int MAX_RATED_WIDTH = 32;
+
+    // Each row is packed into one or more words, the first column being the highest bit
+    private long[] diagnosticReport = new long[1024];
+    private int width = 0;
+    private int wordsPerRow = 1;
+    private int size = 0;
+    private long[] sortedValues;
 
     public void addReport (String file){
-        try {
-            // Reads the file and adds its parsed contents to a list
-            List<String> lines = Files.readAllLines(Paths.get(file));
-            this.diagnosticReport.addAll(lines);
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file))) {
+            // Reads the file and packs each line into bits
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    this.addRow(line);
+                }
+            }
         }
         catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    /* Reads the report and returns a String for each bit
-    * (1 if the most common bit at a given position is 1, 0 otherwise) */
-    public String[] readDiagnosticReport (List<String> report, int start, int end) {
-        // Checks which element is most frequent at a given position
-        int[] bitOccurrence = new int[end - start];
-        for (String binary : report){
-            for (int i = 0; i < end - start; i++){
-                // +1 for binary 1s, -1 for binary 0s
-                bitOccurrence[i] += binary.charAt(start + i) == '1' ? 1: -1;
+    /** Packs a binary number, growing the array when it is full. */
+    private void addRow(String binary) {
+        if (this.size == 0) {
+            this.width = binary.length();
+            this.wordsPerRow = (this.width + 63) >>> 6;
+        }
+        int offset = this.size * this.wordsPerRow;
+        if (offset + this.wordsPerRow > this.diagnosticReport.length) {
+            this.diagnosticReport = Arrays.copyOf(this.diagnosticReport,
+                    Math.max(this.diagnosticReport.length * 2, offset + this.wordsPerRow));
+        }
+        for (int i = 0; i < this.width; i++) {
+            if (binary.charAt(i) == '1') {
+                this.diagnosticReport[offset + (i >>> 6)] |= 1L << (63 - (i & 63));
             }
         }
-        // Transforms the numbers into bits
-        String[] res = new String[bitOccurrence.length];
-        for (int i = 0; i < bitOccurrence.length; i++){
-            res[i] = bitOccurrence[i] >= 0 ? "1" : "0";
+        this.size++;
+        this.sortedValues = null;
+    }
+
+    /** Returns the number of 1s at each position of the report. */
+    public long[] countColumns() {
+        ColumnCounter counter = new ColumnCounter(this.width);
+        for (int row = 0; row < this.size; row++) {
+            counter.addRow(this.diagnosticReport, row * this.wordsPerRow);
+        }
+        return counter.getCounts();
+    }
+
+    /** Returns the value of a row, for reports up to 63 bits wide. */
+    private long getValue(int row) {
+        return this.diagnosticReport[row] >>> (64 - this.width);
+    }
+
+    /** Checks that each row fits in a single value. */
+    private void checkWidth() {
+        if (this.width > 63) {
+            throw new IllegalStateException("Rows of " + this.width + " bits do not fit in a long");
+        }
+    }
+
+    /** Checks that the product of two ratings of a row always fits in a long. */
+    static void checkRatedWidth(int width) {
+        if (width > MAX_RATED_WIDTH) {
+            throw new IllegalStateException("Rows of " + width + " bits are too wide to be rated");
         }
-        return res;
     }
 
-    /* Gives the answer to part 1*/
-    public int getPowerConsumption() {
-        // Get the two metrics
-        String[] gamma = readDiagnosticReport(this.diagnosticReport, 0, this.diagnosticReport.get(0).length());
-        String[] epsilon = new String[gamma.length];
-        for (int i = 0; i < epsilon.length; i++){
-            epsilon[i] = Integer.toString(abs(Integer.parseInt(gamma[i]) - 1));
+    /** Gives the answer to part 1, for reports up to 32 bits wide. */
+    public long getPowerConsumption() {
+        checkRatedWidth(this.width);
+        return computePowerConsumption(this.countColumns(), this.size, this.width);
+    }
+
+    /** Computes the power consumption from the number of 1s at each position of a report
+     * up to 32 bits wide. */
+    static long computePowerConsumption(long[] counts, long rows, int width) {
+        checkRatedWidth(width);
+        // Gamma has a 1 wherever 1 is the most common bit, epsilon is its complement
+        long gammaRate = 0;
+        for (int i = 0; i < width; i++) {
+            if (2 * counts[i] >= rows) {
+                gammaRate |= 1L << (width - 1 - i);
+            }
         }
+        long epsilonRate = ~gammaRate & ((1L << width) - 1);
 
-        // Converts values to integers
-        int gammaRate = Integer.parseInt(String.join("", gamma), 2);
-        int epsilonRate = Integer.parseInt(String.join("", epsilon), 2);
+        return Math.multiplyExact(gammaRate, epsilonRate);
+    }
 
-        return gammaRate * epsilonRate;
+    /** Gives the answer to part 1 without loading the report: the file is mapped in chunks
+     * whose column bits are counted in parallel, and the counts are then added up.
+     * The report must be at most 32 bits wide. */
+    public static long streamPowerConsumption(String file) {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            long length = channel.size();
+            // Finds the width of a row and the length of its line ending from the first line
+            MappedByteBuffer start = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(length, 4096));
+            int width = 0;
+            while (width < start.limit() && start.get(width) != '\n' && start.get(width) != '\r') {
+                width++;
+            }
+            if (width == 0) {
+                throw new IllegalStateException("Rows of " + width + " bits cannot be rated");
+            }
+            // Rejects wide rows before the whole file is counted
+            checkRatedWidth(width);
+            int stride = width + 1;
+            if (width + 1 < start.limit() && start.get(width) == '\r' && start.get(width + 1) == '\n') {
+                stride++;
+            }
+            // The last line may not end with a line break
+            long rows = (length + stride - width) / stride;
+            ColumnCounter counter = ForkJoinPool.commonPool().invoke(new ReportChunk(channel, width, stride, 0, rows));
+            return computePowerConsumption(counter.getCounts(), rows, width);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    /** Returns the values of the rows in increasing order, sorting them on first use. */
+    private long[] getSortedValues() {
+        this.checkWidth();
+        if (this.sortedValues == null) {
+            long[] values = new long[this.size];
+            for (int row = 0; row < this.size; row++) {
+                values[row] = this.getValue(row);
+            }
+            Arrays.sort(values);
+            this.sortedValues = values;
+        }
+        return this.sortedValues;
     }
 
-    /* Filters binary numbers until only one remains, by keeping only those containing at position i
-    * either the most or the least frequent digit in all remaining numbers */
-    public int filterNumbers(List<String> numbers, boolean mostCommon){
-        for (int i = 0; i < numbers.get(0).length(); i++) {
-            if (numbers.size() > 1) {
-                int finalI = i;
-                String[] mostFreq = readDiagnosticReport(numbers, finalI, finalI + 1);
-                // Gets either the most or the least frequent element at position i
-                int compare = mostCommon ? Integer.parseInt(mostFreq[0]) : Integer.parseInt(mostFreq[0]) == 1 ? 0 : 1;
-                numbers = numbers.stream()
-                        .filter((s) -> Character.getNumericValue(s.charAt(finalI)) == compare)
-                        .collect(Collectors.toList());
+    /** Filters binary numbers until only one remains, by keeping only those containing at position i
+    * either the most or the least frequent digit in all remaining numbers.
+    * The numbers are sorted, so the remaining ones always form a range sharing their first i bits,
+    * in which those with a 0 at position i come before those with a 1. Each step is a binary search. */
+    public long filterNumbers(boolean mostCommon){
+        long[] numbers = this.getSortedValues();
+        int start = 0;
+        int end = this.size;
+        for (int i = 0; i < this.width && end - start > 1; i++) {
+            int shift = this.width - 1 - i;
+            // Finds the first number with a 1 at position i
+            int low = start;
+            int high = end;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (((numbers[middle] >>> shift) & 1) == 0) {
+                    low = middle + 1;
+                }
+                else {
+                    high = middle;
+                }
+            }
+            int ones = end - low;
+            // Gets either the most or the least frequent element at position i
+            boolean mostFreqIsOne = 2 * ones >= end - start;
+            if (mostFreqIsOne == mostCommon) {
+                start = low;
             }
             else {
-                break;
+                end = low;
             }
         }
-        return Integer.parseInt(numbers.get(0), 2);
+        if (start == end) {
+            throw new IllegalStateException("No number left after filtering the report");
+        }
+        return numbers[start];
     }
 
-    /* Gives the answer to part 2 */
-    public int getLifeSupportRating(){
-        int oxygenGenerator = filterNumbers(this.diagnosticReport, true);
-        int CO2Scrubber = filterNumbers(this.diagnosticReport, false);
-        return oxygenGenerator * CO2Scrubber;
+    /** Gives the answer to part 2, for reports up to 32 bits wide. */
+    public long getLifeSupportRating(){
+        checkRatedWidth(this.width);
+        long oxygenGenerator = filterNumbers(true);
+        long CO2Scrubber = filterNumbers(false);
+        return Math.multiplyExact(oxygenGenerator, CO2Scrubber);
     }
 
     public static void main(String[] args) {
         Submarine submarine = new Submarine();
         submarine.addReport("day3.txt");
-        int part1 = submarine.getPowerConsumption();
-        int part2 = submarine.getLifeSupportRating();
+        long part1 = submarine.getPowerConsumption();
+        long part2 = submarine.getLifeSupportRating();
         System.out.println("Answer to part 1 : " + part1);
         System.out.println("Answer to part 2 : " + part2);
     }
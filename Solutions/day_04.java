@@ -3,16 +3,34 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
 
 /** Class representing a bingo board, initialised with a list of strings representing
- * a 5x5 grid. */
+ * a 5x5 grid. The marked cells are kept as the bits of a single int (bit i * 5 + j for
+ * row i and column j), and the sum of the unmarked numbers is updated on every hit. */
 class BingoBoard {
 
-    private final int[][] board = new int[5][5];
-    private final boolean[][] wasFound = new boolean[5][5];
-    private final int[] rowsTotals = new int[5];
-    private final int[] columnsTotals = new int[5];
+    // Masks of the 5 rows followed by the 5 columns
+    private static final int[] WIN_MASKS = new int[10];
+
+    static {
+        for (int i = 0; i < 5; i++){
+            WIN_MASKS[i] = 0b11111 << (i * 5);
+            WIN_MASKS[5 + i] = 0b100001000010000100001 << i;
+        }
+    }
+
+    private final int[] board = new int[25];
+    private int marks = 0;
+    private int unmarkedSum = 0;
 
     /** Reads a string representation of a board and adds its contents to the object's board. */
     public BingoBoard (List<String> data){
@@ -22,7 +40,8 @@ class BingoBoard {
             String[] numbers = line.split("\s+");
             int j = 0;
             for (String n : numbers){
-                this.board[i][j] = Integer.parseInt(n);
+                this.board[i * 5 + j] = Integer.parseInt(n);
+                this.unmarkedSum += this.board[i * 5 + j];
                 j++;
             }
             i++;
@@ -32,51 +51,50 @@ class BingoBoard {
     /** Adds the number if it is to be found on the board. If the number was a winning number, returns
      * the player's score. Otherwise, returns -1.*/
     public int addNumber(int n){
-        for (int i = 0; i < 5; i++){
-            for (int j = 0; j < 5; j++){
-                if (this.board[i][j] == n){
-                    this.wasFound[i][j] = true;
-                    this.rowsTotals[i]++;
-                    this.columnsTotals[j]++;
-                    if(this.checkIfHasWon()){
-                        return computeScore(n);
-                    }
-                    else {
-                        return -1;
-                    }
-                }
+        for (int cell = 0; cell < 25; cell++){
+            if (this.board[cell] == n){
+                return this.markCell(cell / 5, cell % 5);
             }
         }
         return -1;
     }
 
+    /** Marks the number at the given position. If it makes the board win, returns the player's
+     * score. Otherwise, returns -1. Only the row and the column of the cell can have been completed. */
+    public int markCell(int i, int j){
+        int bit = 1 << (i * 5 + j);
+        if ((this.marks & bit) != 0){
+            return -1;
+        }
+        this.marks |= bit;
+        this.unmarkedSum -= this.board[i * 5 + j];
+        if ((this.marks & WIN_MASKS[i]) == WIN_MASKS[i] || (this.marks & WIN_MASKS[5 + j]) == WIN_MASKS[5 + j]){
+            return computeScore(this.board[i * 5 + j]);
+        }
+        else {
+            return -1;
+        }
+    }
+
+    /** Returns the number at the given position. */
+    public int getNumber(int i, int j){
+        return this.board[i * 5 + j];
+    }
+
     /** Returns true if one of the lines or columns is complete. */
     public boolean checkIfHasWon() {
-        for (int i : this.rowsTotals){
-            if (i == 5){
-                return true;
-            }
-        }
-        for (int i : this.columnsTotals){
-            if (i == 5){
+        for (int mask : WIN_MASKS){
+            if ((this.marks & mask) == mask){
                 return true;
             }
         }
         return false;
     }
 
-    /** Computes a winning board's score, by adding up the values of all unmarked numbers and
-     * multiplying it by the winning number. */
+    /** Computes a winning board's score, by multiplying the sum of all unmarked numbers
+     * by the winning number. */
     public int computeScore(int n) {
-        int total = 0;
-        for (int i = 0; i < 5; i++){
-            for (int j = 0; j < 5; j++){
-                if (!this.wasFound[i][j]){
-                    total += this.board[i][j];
-                }
-            }
-        }
-        return total * n;
+        return this.unmarkedSum * n;
     }
 
 }
@@ -84,8 +102,12 @@ class BingoBoard {
 /** Class representing a bingo game, with a flexible number of players and numbers drawn.*/
 class BingoGame {
 
+    private static final int[] NO_OCCURRENCES = new int[0];
+
     private int[] numbersDrawn;
     private final List<BingoBoard> players = new ArrayList<>();
+    // For each number, the positions at which it appears, encoded as board * 25 + row * 5 + column
+    private final Map<Integer, int[]> occurrences = new HashMap<>();
 
     /** Creates a new game based on a text file. */
     public void initialiseGame(String file) {
@@ -103,19 +125,41 @@ class BingoGame {
                 }
                 i += 6;
             }
+            this.indexNumbers();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /** Builds the index of the positions of each number, in the order of the players. A board
+     * only reacts to the first occurrence of a number, so later ones are left out. */
+    private void indexNumbers() {
+        Map<Integer, List<Integer>> positions = new HashMap<>();
+        for (int p = 0; p < this.players.size(); p++) {
+            BingoBoard player = this.players.get(p);
+            for (int cell = 0; cell < 25; cell++) {
+                List<Integer> list = positions.computeIfAbsent(player.getNumber(cell / 5, cell % 5), k -> new ArrayList<>());
+                if (list.isEmpty() || list.get(list.size() - 1) / 25 != p) {
+                    list.add(p * 25 + cell);
+                }
+            }
+        }
+        this.occurrences.clear();
+        for (Map.Entry<Integer, List<Integer>> entry : positions.entrySet()) {
+            this.occurrences.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+    }
+
     /**
      * Plays the game until a player wins, and returns their score. If no player wins,
      * returns -1.
      */
     public int playGameAndWin() {
         for (int number : this.numbersDrawn) {
-            for (BingoBoard player : this.players) {
-                int res = player.addNumber(number);
+            // Only the boards containing the number are visited
+            for (int position : this.occurrences.getOrDefault(number, NO_OCCURRENCES)) {
+                int cell = position % 25;
+                int res = this.players.get(position / 25).markCell(cell / 5, cell % 5);
                 if (res != -1) {
                     return res;
                 }
@@ -128,38 +172,186 @@ class BingoGame {
      * Plays the game until the last player wins, and returns their score.
      */
     public int playGameAndLose() {
+        boolean[] hasWon = new boolean[this.players.size()];
+        int remaining = this.players.size();
         for (int number : this.numbersDrawn) {
-            // Creates a list of players who have won (to remove them from the list after the loop).
-            List<BingoBoard> winningPlayers = new ArrayList<>();
-            for (BingoBoard player : this.players) {
-                int res = player.addNumber(number);
+            // Counts the players who have won (to take them out of the game after the loop).
+            int winningPlayers = 0;
+            for (int position : this.occurrences.getOrDefault(number, NO_OCCURRENCES)) {
+                int player = position / 25;
+                if (hasWon[player]) {
+                    continue;
+                }
+                int cell = position % 25;
+                int res = this.players.get(player).markCell(cell / 5, cell % 5);
                 if (res != -1) {
                     // if there is only one player left in the game: returns their winning score
-                    if (this.players.size() > 1) {
-                        winningPlayers.add(player);
+                    if (remaining > 1) {
+                        hasWon[player] = true;
+                        winningPlayers++;
                     } else {
                         return res;
                     }
                 }
             }
-            // removes the players who have already won
-            for (BingoBoard player : winningPlayers) {
-                this.players.remove(player);
-            }
+            remaining -= winningPlayers;
         }
         return -1;
     }
 
+    /** Returns the numbers of all the boards, 25 per board, in the order of the players. */
+    public int[] getBoardCells() {
+        int[] cells = new int[this.players.size() * 25];
+        for (int p = 0; p < this.players.size(); p++) {
+            for (int cell = 0; cell < 25; cell++) {
+                cells[p * 25 + cell] = this.players.get(p).getNumber(cell / 5, cell % 5);
+            }
+        }
+        return cells;
+    }
+
+    /** Returns the scores of the first and of the last player to win, without playing the game
+     * (the boards are left untouched). See solve(int[], int[]). */
+    public int[] solve() {
+        return solve(this.getBoardCells(), this.numbersDrawn, true);
+    }
+
+    /**
+     * Returns the scores of the first and of the last board to win, given the numbers of the
+     * boards (25 per board) and the numbers drawn. Each number is mapped to the turn at which
+     * it is drawn, and a board wins on the earliest turn at which one of its lines is complete,
+     * i.e. the minimum over its lines of the latest turn in the line. The boards are solved in
+     * parallel (if requested) and the earliest and latest winners are picked in the same pass.
+     * When several boards win on the same turn, the first one listed wins and the last one
+     * listed loses.
+     * A score is -1 if a board never wins, and both scores are -1 if there is no board.
+     */
+    static int[] solve(int[] cells, int[] numbersDrawn, boolean parallel) {
+        if (cells.length == 0) {
+            return new int[]{-1, -1};
+        }
+        int[] turns = getTurns(cells, numbersDrawn);
+        IntStream boards = IntStream.range(0, cells.length / 25);
+        if (parallel) {
+            boards = boards.parallel();
+        }
+        // Each board is summarised as its winning turn followed by its index
+        LongSummaryStatistics winners = boards
+                .mapToLong(board -> ((long) getWinningTurn(turns, board * 25) << 32) | board)
+                .summaryStatistics();
+        return new int[]{getScore(cells, numbersDrawn, turns, winners.getMin()),
+                getScore(cells, numbersDrawn, turns, winners.getMax())};
+    }
+
+    /** Gives the first turn at which the number of each cell is drawn (Integer.MAX_VALUE if
+     * never). The turns are looked up in an array indexed by number when the numbers on the
+     * boards are small, and in a map when they are negative or too spread out for an array. */
+    private static int[] getTurns(int[] cells, int[] numbersDrawn) {
+        int lowest = 0;
+        int highest = 0;
+        for (int number : cells) {
+            lowest = Math.min(lowest, number);
+            highest = Math.max(highest, number);
+        }
+        int[] turns = new int[cells.length];
+        // The array holds at most a few entries per cell
+        if (lowest >= 0 && highest / 4 < cells.length) {
+            int[] turnOfNumber = new int[highest + 1];
+            Arrays.fill(turnOfNumber, Integer.MAX_VALUE);
+            for (int turn = numbersDrawn.length - 1; turn >= 0; turn--) {
+                if (numbersDrawn[turn] >= 0 && numbersDrawn[turn] <= highest) {
+                    turnOfNumber[numbersDrawn[turn]] = turn;
+                }
+            }
+            for (int cell = 0; cell < cells.length; cell++) {
+                turns[cell] = turnOfNumber[cells[cell]];
+            }
+        }
+        else {
+            Map<Integer, Integer> turnOfNumber = new HashMap<>();
+            for (int turn = 0; turn < numbersDrawn.length; turn++) {
+                turnOfNumber.putIfAbsent(numbersDrawn[turn], turn);
+            }
+            for (int cell = 0; cell < cells.length; cell++) {
+                turns[cell] = turnOfNumber.getOrDefault(cells[cell], Integer.MAX_VALUE);
+            }
+        }
+        return turns;
+    }
+
+    /** Returns the turn at which the board starting at the given offset wins. */
+    private static int getWinningTurn(int[] turns, int offset) {
+        int best = Integer.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            int row = 0;
+            int column = 0;
+            for (int j = 0; j < 5; j++) {
+                row = Math.max(row, turns[offset + i * 5 + j]);
+                column = Math.max(column, turns[offset + j * 5 + i]);
+            }
+            best = Math.min(best, Math.min(row, column));
+        }
+        return best;
+    }
+
+    /** Computes the score of a board summarised by its winning turn and its index. */
+    private static int getScore(int[] cells, int[] numbersDrawn, int[] turns, long winner) {
+        int turn = (int) (winner >>> 32);
+        if (turn == Integer.MAX_VALUE) {
+            return -1;
+        }
+        int offset = (int) winner * 25;
+        int total = 0;
+        for (int cell = 0; cell < 25; cell++) {
+            if (turns[offset + cell] > turn) {
+                total += cells[offset + cell];
+            }
+        }
+        return total * numbersDrawn[turn];
+    }
+
     public static void main(String[] args) {
-        BingoGame gameOne = new BingoGame();
-        gameOne.initialiseGame("day4.txt");
-        int winningScore = gameOne.playGameAndWin();
+        BingoGame game = new BingoGame();
+        game.initialiseGame("day4.txt");
+        int[] scores = game.solve();
+
+        System.out.println("Answer to part 1 : " + scores[0]);
+        System.out.println("Answer to part 2 : " + scores[1]);
+    }
+}
+
+/** Class evaluating many orders of draws against the same boards. The boards are read once
+ * and never modified, so every order can be played at the same time. */
+class BingoTournament {
 
-        BingoGame gameTwo = new BingoGame();
-        gameTwo.initialiseGame("day4.txt");
-        int losingScore = gameTwo.playGameAndLose();
+    private final int[] cells;
+
+    /** Creates a tournament with the boards of a game file (its numbers drawn are ignored). */
+    BingoTournament(String file) {
+        BingoGame game = new BingoGame();
+        game.initialiseGame(file);
+        this.cells = game.getBoardCells();
+    }
 
-        System.out.println("Answer to part 1 : " + winningScore);
-        System.out.println("Answer to part 2 : " + losingScore);
+    /** Returns the scores of the first and last winners for each order of draws, in the same
+     * order, playing them on the given number of threads. */
+    public List<int[]> play(List<int[]> drawOrders, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<int[]>> futures = new ArrayList<>();
+            for (int[] numbersDrawn : drawOrders) {
+                // Each order is solved on a single thread, the orders being the unit of parallelism
+                futures.add(executor.submit(() -> BingoGame.solve(this.cells, numbersDrawn, false)));
+            }
+            List<int[]> scores = new ArrayList<>();
+            for (Future<int[]> future : futures) {
+                scores.add(future.get());
+            }
+            return scores;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("The tournament could not be completed", e);
+        } finally {
+            executor.shutdown();
+        }
     }
 }
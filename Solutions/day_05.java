@@ -2,10 +2,323 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.stream.IntStream;
 import static java.lang.Math.abs;
-import static java.lang.Math.min;
 import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+
+/** Grid counting how many lines cross each point, horizontal and vertical lines apart from
+ * diagonal ones. Counts only need to go up to 2, as only overlaps matter. */
+interface VentGrid {
+
+    /** Records a line crossing the point x,y. */
+    void mark(int x, int y, boolean diagonal);
+
+    /** Returns the number of points crossed by 2 or more lines. Includes diagonals
+     * if the boolean is set to true. */
+    long countOverlaps(boolean getDiagonal);
+
+    /** Adds a crossing to a cell holding the straight count in its low 4 bits and the
+     * diagonal count in the next 4 bits, both saturating at 2 (so a cell fits in a byte). */
+    static int addCrossing(int cell, boolean diagonal) {
+        int shift = diagonal ? 4 : 0;
+        return ((cell >>> shift) & 0xF) < 2 ? cell + (1 << shift) : cell;
+    }
+
+    /** Returns true if a cell was crossed by 2 or more lines. */
+    static boolean isOverlap(int cell, boolean getDiagonal) {
+        int count = getDiagonal ? (cell & 0xF) + ((cell >>> 4) & 0xF) : cell & 0xF;
+        return count >= 2;
+    }
+}
+
+/** Grid whose rows (points sharing an x) are stored separately, so that threads working on
+ * different bands of rows never write to the same memory. */
+interface BandedGrid extends VentGrid {
+
+    /** Returns the number of rows. */
+    int getWidth();
+
+    /** Returns the number of points in a row. */
+    int getHeight();
+
+    /** Returns true if the point x,y was crossed by 2 or more lines. Includes diagonals
+     * if the boolean is set to true. */
+    boolean isOverlap(int x, int y, boolean getDiagonal);
+
+    /** Returns the number of points crossed by 2 or more lines in the rows between fromX
+     * (included) and toX (excluded). */
+    long countOverlaps(boolean getDiagonal, int fromX, int toX);
+}
+
+/** Grid storing a count for every point between 0,0 and the highest coordinates. */
+class DenseGrid implements BandedGrid {
+
+    private final int[][] map;
+
+    DenseGrid(int x, int y) {
+        this.map = new int[x + 1][y + 1];
+    }
+
+    @Override
+    public void mark(int x, int y, boolean diagonal) {
+        this.map[x][y] = VentGrid.addCrossing(this.map[x][y], diagonal);
+    }
+
+    @Override
+    public long countOverlaps(boolean getDiagonal) {
+        return this.countOverlaps(getDiagonal, 0, this.map.length);
+    }
 
+    @Override
+    public long countOverlaps(boolean getDiagonal, int fromX, int toX) {
+        long total = 0;
+        for (int x = fromX; x < toX; x++){
+            for (int val : this.map[x]){
+                if (VentGrid.isOverlap(val, getDiagonal)){
+                    total++;
+                }
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public int getWidth() {
+        return this.map.length;
+    }
+
+    @Override
+    public int getHeight() {
+        return this.map[0].length;
+    }
+
+    @Override
+    public boolean isOverlap(int x, int y, boolean getDiagonal) {
+        return VentGrid.isOverlap(this.map[x][y], getDiagonal);
+    }
+}
+
+/** Grid storing counts only for the 32x32 tiles crossed by a line, one byte per point. The tiles
+ * are found with an open addressing hash table keyed by the tile coordinates packed into a long,
+ * so coordinates can be as large (or as negative) as an int allows. */
+class SparseGrid implements VentGrid {
+
+    private static final int TILE_BITS = 5;
+    private static final int TILE_SIZE = 1 << TILE_BITS;
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys = new long[64];
+    private byte[][] tiles = new byte[64][];
+    private int size = 0;
+    // Consecutive points of a line are usually on the same tile
+    private long lastKey = EMPTY;
+    private byte[] lastTile;
+
+    public SparseGrid() {
+        Arrays.fill(this.keys, EMPTY);
+    }
+
+    @Override
+    public void mark(int x, int y, boolean diagonal) {
+        long key = ((long) (x >> TILE_BITS) << 32) | ((y >> TILE_BITS) & 0xFFFFFFFFL);
+        if (key != this.lastKey) {
+            this.lastTile = this.getTile(key);
+            this.lastKey = key;
+        }
+        int cell = (x & (TILE_SIZE - 1)) << TILE_BITS | (y & (TILE_SIZE - 1));
+        this.lastTile[cell] = (byte) VentGrid.addCrossing(this.lastTile[cell], diagonal);
+    }
+
+    /** Returns the tile with the given key, allocating it on first use. */
+    private byte[] getTile(long key) {
+        int slot = this.findSlot(key);
+        if (this.keys[slot] == EMPTY) {
+            if (2 * (this.size + 1) > this.keys.length) {
+                this.resize();
+                slot = this.findSlot(key);
+            }
+            this.keys[slot] = key;
+            this.tiles[slot] = new byte[TILE_SIZE * TILE_SIZE];
+            this.size++;
+        }
+        return this.tiles[slot];
+    }
+
+    /** Returns the slot holding the key, or the empty slot where it belongs (linear probing). */
+    private int findSlot(long key) {
+        int mask = this.keys.length - 1;
+        // The capacity is a power of two, so the top log2(capacity) bits of the hash give the slot
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(this.keys.length)));
+        while (this.keys[slot] != EMPTY && this.keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /** Doubles the capacity of the table. */
+    private void resize() {
+        long[] oldKeys = this.keys;
+        byte[][] oldTiles = this.tiles;
+        this.keys = new long[oldKeys.length * 2];
+        this.tiles = new byte[oldKeys.length * 2][];
+        Arrays.fill(this.keys, EMPTY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = this.findSlot(oldKeys[i]);
+                this.keys[slot] = oldKeys[i];
+                this.tiles[slot] = oldTiles[i];
+            }
+        }
+    }
+
+    @Override
+    public long countOverlaps(boolean getDiagonal) {
+        long total = 0;
+        for (byte[] tile : this.tiles) {
+            if (tile != null) {
+                for (byte val : tile) {
+                    if (VentGrid.isOverlap(val, getDiagonal)) {
+                        total++;
+                    }
+                }
+            }
+        }
+        return total;
+    }
+
+    /** Returns the number of allocated tiles. */
+    public int getTileCount() {
+        return this.size;
+    }
+}
+
+/** Grid storing a 2-bit saturating counter (0, 1 or 2 and more) per point and per count, i.e.
+ * 32 points per long. Horizontal and vertical lines are counted in one set of counters and all
+ * lines in another, so a point takes 4 bits instead of the 32 of a DenseGrid. */
+class PackedGrid implements BandedGrid {
+
+    // Selects the high bit of each counter, which is set once it reaches 2
+    private static final long HIGH_BITS = 0xAAAAAAAAAAAAAAAAL;
+
+    private final long[][] straight;
+    private final long[][] all;
+    private final int height;
+
+    PackedGrid(int x, int y) {
+        this.height = y + 1;
+        int words = (y + 1 + 31) >>> 5;
+        this.straight = new long[x + 1][words];
+        this.all = new long[x + 1][words];
+    }
+
+    /** Adds 1 to the counter of point y in a row, unless it has already reached 2. */
+    private static void increment(long[] row, int y) {
+        int shift = (y & 31) << 1;
+        long counter = (row[y >>> 5] >>> shift) & 3;
+        // 1 for a counter of 0 or 1, 0 for a counter of 2
+        row[y >>> 5] += ((~counter >>> 1) & 1) << shift;
+    }
+
+    @Override
+    public void mark(int x, int y, boolean diagonal) {
+        if (!diagonal) {
+            increment(this.straight[x], y);
+        }
+        increment(this.all[x], y);
+    }
+
+    @Override
+    public long countOverlaps(boolean getDiagonal) {
+        return this.countOverlaps(getDiagonal, 0, this.all.length);
+    }
+
+    @Override
+    public long countOverlaps(boolean getDiagonal, int fromX, int toX) {
+        long[][] counters = getDiagonal ? this.all : this.straight;
+        long total = 0;
+        for (int x = fromX; x < toX; x++) {
+            for (long word : counters[x]) {
+                total += Long.bitCount(word & HIGH_BITS);
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public int getWidth() {
+        return this.all.length;
+    }
+
+    @Override
+    public int getHeight() {
+        return this.height;
+    }
+
+    @Override
+    public boolean isOverlap(int x, int y, boolean getDiagonal) {
+        long[] row = getDiagonal ? this.all[x] : this.straight[x];
+        return ((row[y >>> 5] >>> ((y & 31) << 1)) & 2) != 0;
+    }
+}
+
+/** Summed-area table of the points crossed by 2 or more lines: each entry holds the number of
+ * such points in the rectangle between 0,0 and its position, so the number of points in any
+ * rectangle can be found from 4 entries. */
+class DangerIndex {
+
+    // sums[x + 1][y + 1] holds the count for the rectangle between 0,0 and x,y
+    private final int[][] sums;
+
+    /** Builds the table from a filled grid. The sums may overflow an int on huge grids, but as
+     * the counts of actual rectangles are computed modulo 2^32 they are still exact when they fit. */
+    DangerIndex(BandedGrid grid, boolean getDiagonal) {
+        int width = grid.getWidth();
+        int height = grid.getHeight();
+        this.sums = new int[width + 1][height + 1];
+        for (int x = 0; x < width; x++) {
+            int rowTotal = 0;
+            for (int y = 0; y < height; y++) {
+                if (grid.isOverlap(x, y, getDiagonal)) {
+                    rowTotal++;
+                }
+                this.sums[x + 1][y + 1] = this.sums[x][y + 1] + rowTotal;
+            }
+        }
+    }
+
+    /** Returns the number of points crossed by 2 or more lines inside the rectangle between
+     * x1,y1 and x2,y2 (both included). Parts of the rectangle outside the grid are ignored. */
+    public int countDangerous(int x1, int y1, int x2, int y2) {
+        int fromX = max(min(x1, x2), 0);
+        int fromY = max(min(y1, y2), 0);
+        int toX = min(max(x1, x2), this.sums.length - 2);
+        int toY = min(max(y1, y2), this.sums[0].length - 2);
+        if (fromX > toX || fromY > toY) {
+            return 0;
+        }
+        return this.sums[toX + 1][toY + 1] - this.sums[fromX][toY + 1]
+                - this.sums[toX + 1][fromY] + this.sums[fromX][fromY];
+    }
+
+    /** Returns the number of dangerous points in each rectangle, given as {x1, y1, x2, y2}. */
+    public int[] countDangerous(int[][] rectangles) {
+        int[] res = new int[rectangles.length];
+        for (int i = 0; i < rectangles.length; i++) {
+            int[] r = rectangles[i];
+            res[i] = this.countDangerous(r[0], r[1], r[2], r[3]);
+        }
+        return res;
+    }
+}
+
+/** Backends available to store the counts of a CoordinatesReader. */
+enum GridType {
+    DENSE,
+    SPARSE,
+    PACKED
+}
 
 class Coordinates {
 
@@ -22,34 +335,58 @@ class Coordinates {
         this.y2 = Integer.parseInt(end[1]);
     }
 
-    /** Returns a list of tuples containing coordinates of each point crossed by the line
-     * starting at x1,y1 and ending at x2,y2. If getDiagonal is set to true, also includes
-     * diagonal lines. Otherwise, only includes horizontal or vertical lines. */
-    public List<List<Integer>> getStraightLine(boolean getDiagonal){
-        List<List<Integer>> res = new ArrayList<>();
-        if (this.x1 == this.x2){
-            for (int i = 0; i < abs(y1 - y2) + 1; i++){
-                int y = min(y1, y2) + i;
-                res.add(new ArrayList<>(Arrays.asList(x1, y)));
-            }
+    /** Adds the line starting at x1,y1 and ending at x2,y2 to the counts of the grid, one point
+     * at a time. Lines that are neither horizontal nor vertical are diagonal. */
+    public void drawLine(VentGrid grid){
+        int dx = Long.signum(this.getLengthX());
+        int dy = Long.signum(this.getLengthY());
+        boolean diagonal = dx != 0 && dy != 0;
+        long steps = max(abs(this.getLengthX()), abs(this.getLengthY()));
+        int x = x1;
+        int y = y1;
+        for (long i = 0; i <= steps; i++){
+            grid.mark(x, y, diagonal);
+            x += dx;
+            y += dy;
         }
-        else if (this.y1 == this.y2){
-            for (int i = 0; i < abs(x1 - x2) + 1; i++){
-                int x = min(x1, x2) + i;
-                res.add(new ArrayList<>(Arrays.asList(x, y1)));
+    }
+
+    /** Adds the part of the line whose x is between fromX (included) and toX (excluded)
+     * to the counts of the grid. */
+    public void drawLine(VentGrid grid, int fromX, int toX){
+        int dx = Long.signum(this.getLengthX());
+        int dy = Long.signum(this.getLengthY());
+        boolean diagonal = dx != 0 && dy != 0;
+        long steps = max(abs(this.getLengthX()), abs(this.getLengthY()));
+        // Finds the first and last steps inside the band
+        long first = 0;
+        long last = steps;
+        if (dx == 0) {
+            if (x1 < fromX || x1 >= toX) {
+                return;
             }
         }
+        else if (dx > 0) {
+            first = max(first, (long) fromX - x1);
+            last = min(last, (long) toX - 1 - x1);
+        }
         else {
-            if (getDiagonal){
-                int difference = abs(x1 - x2);
-                for (int i = 0; i <= difference; i++){
-                    int x = x1 < x2 ? x1 + i : x1 - i;
-                    int y = y1 < y2 ? y1 + i : y1 - i;
-                    res.add(new ArrayList<>(Arrays.asList(x, y)));
-                }
-            }
+            first = max(first, (long) x1 - toX + 1);
+            last = min(last, (long) x1 - fromX);
         }
-        return res;
+        for (long i = first; i <= last; i++){
+            grid.mark((int) (x1 + dx * i), (int) (y1 + dy * i), diagonal);
+        }
+    }
+
+    /** Returns x2 - x1, computed as a long so that lines spanning the whole int range do not overflow. */
+    private long getLengthX(){
+        return (long) x2 - x1;
+    }
+
+    /** Returns y2 - y1, computed as a long so that lines spanning the whole int range do not overflow. */
+    private long getLengthY(){
+        return (long) y2 - y1;
     }
 
     /** Returns the highest values between each pair of coordinates. */
@@ -59,12 +396,283 @@ class Coordinates {
 
 }
 
+/** Counts the points crossed by 2 or more lines without drawing them, in a time that depends
+ * on the number of lines rather than on their length. The lines are grouped by orientation
+ * and intercept: overlaps between lines of the same group are intervals, found by merging,
+ * and lines of different orientations can only cross at single points, found with a sweep line. */
+class OverlapSweep {
+
+    // Orientations of the lines: diagonals are rising (y - x constant) or falling (x + y constant)
+    private static final int HORIZONTAL = 0;
+    private static final int VERTICAL = 1;
+    private static final int RISING = 2;
+    private static final int FALLING = 3;
+
+    /** Lines sharing an orientation and an intercept, as sorted lists of disjoint intervals
+     * [start, end] (flattened in pairs) of the points covered once and twice or more. */
+    private static class LineGroup {
+        long[] covered;
+        long[] overlaps;
+    }
+
+    /** Turns an interval of a line into an interval of the sweep plane: its fixed coordinate
+     * followed by its start and end. */
+    private interface IntervalMapper {
+        long[] map(long key, long start, long end);
+    }
+
+    /** Turns the crossing of a horizontal and a vertical interval of the sweep plane into a point. */
+    private interface CrossingMapper {
+        void add(long t, long s, Set<Long> points);
+    }
+
+    private final List<Map<Long, LineGroup>> groups = new ArrayList<>();
+    private long overlapLength = 0;
+
+    /** Groups the lines, leaving out the diagonal ones unless the boolean is set to true. */
+    OverlapSweep(List<Coordinates> path, boolean getDiagonal) {
+        List<Map<Long, List<long[]>>> intervals = new ArrayList<>();
+        for (int o = 0; o < 4; o++) {
+            intervals.add(new HashMap<>());
+        }
+        for (Coordinates c : path) {
+            int orientation;
+            long key;
+            long start;
+            long end;
+            if (c.x1 == c.x2) {
+                orientation = VERTICAL;
+                key = c.x1;
+                start = min(c.y1, c.y2);
+                end = max(c.y1, c.y2);
+            }
+            else {
+                start = min(c.x1, c.x2);
+                end = max(c.x1, c.x2);
+                if (c.y1 == c.y2) {
+                    orientation = HORIZONTAL;
+                    key = c.y1;
+                }
+                else if (!getDiagonal) {
+                    continue;
+                }
+                else if ((c.x2 > c.x1) == (c.y2 > c.y1)) {
+                    orientation = RISING;
+                    key = (long) c.y1 - c.x1;
+                }
+                else {
+                    orientation = FALLING;
+                    key = (long) c.x1 + c.y1;
+                }
+            }
+            intervals.get(orientation).computeIfAbsent(key, k -> new ArrayList<>()).add(new long[]{start, end});
+        }
+        for (Map<Long, List<long[]>> lines : intervals) {
+            Map<Long, LineGroup> merged = new HashMap<>();
+            for (Map.Entry<Long, List<long[]>> entry : lines.entrySet()) {
+                merged.put(entry.getKey(), this.mergeGroup(entry.getValue()));
+            }
+            this.groups.add(merged);
+        }
+    }
+
+    /** Merges the intervals of the lines of a group, and adds up the length of its overlaps. */
+    private LineGroup mergeGroup(List<long[]> lines) {
+        lines.sort(Comparator.comparingLong(interval -> interval[0]));
+        List<long[]> covered = new ArrayList<>();
+        List<long[]> overlaps = new ArrayList<>();
+        long furthest = Long.MIN_VALUE;
+        for (long[] line : lines) {
+            // Any point of the line before the furthest end seen so far is already covered
+            if (line[0] <= furthest) {
+                addInterval(overlaps, line[0], min(line[1], furthest));
+            }
+            addInterval(covered, line[0], line[1]);
+            furthest = max(furthest, line[1]);
+        }
+        LineGroup group = new LineGroup();
+        group.covered = flatten(covered);
+        group.overlaps = flatten(overlaps);
+        for (long[] overlap : overlaps) {
+            this.overlapLength += overlap[1] - overlap[0] + 1;
+        }
+        return group;
+    }
+
+    /** Adds an interval to a sorted list, merging it with the last one if they touch. */
+    private static void addInterval(List<long[]> intervals, long start, long end) {
+        if (!intervals.isEmpty() && start <= intervals.get(intervals.size() - 1)[1] + 1) {
+            long[] last = intervals.get(intervals.size() - 1);
+            last[1] = max(last[1], end);
+        }
+        else {
+            intervals.add(new long[]{start, end});
+        }
+    }
+
+    private static long[] flatten(List<long[]> intervals) {
+        long[] res = new long[intervals.size() * 2];
+        for (int i = 0; i < intervals.size(); i++) {
+            res[2 * i] = intervals.get(i)[0];
+            res[2 * i + 1] = intervals.get(i)[1];
+        }
+        return res;
+    }
+
+    /** Returns true if the position is inside one of the sorted intervals. */
+    private static boolean contains(long[] intervals, long position) {
+        int low = 0;
+        int high = intervals.length / 2 - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (intervals[2 * middle + 1] < position) {
+                low = middle + 1;
+            }
+            else if (intervals[2 * middle] > position) {
+                high = middle - 1;
+            }
+            else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the intercept of the line of the given orientation going through x,y. */
+    private static long getKey(int orientation, long x, long y) {
+        return switch (orientation) {
+            case HORIZONTAL -> y;
+            case VERTICAL -> x;
+            case RISING -> y - x;
+            default -> x + y;
+        };
+    }
+
+    /** Returns the position of x,y along a line of the given orientation. */
+    private static long getPosition(int orientation, long x, long y) {
+        return orientation == VERTICAL ? y : x;
+    }
+
+    /** Returns the number of points crossed by 2 or more lines. Every point covered twice by a
+     * group is counted once per group, then the points where lines of different orientations
+     * cross are corrected: they are counted once if no group covers them twice, and the
+     * duplicates are removed if several do. */
+    public long countOverlaps() {
+        Set<Long> crossings = new HashSet<>();
+        // Each pair of orientations is drawn in a plane (s, t) where the lines of the first one
+        // are horizontal (t constant) and those of the second one vertical (s constant)
+        this.findCrossings(HORIZONTAL, (y, start, end) -> new long[]{y, start, end},
+                VERTICAL, (x, start, end) -> new long[]{x, start, end},
+                (t, s, points) -> points.add(pack(s, t)), crossings);
+        // s = x - y, t = y
+        this.findCrossings(HORIZONTAL, (y, start, end) -> new long[]{y, start - y, end - y},
+                RISING, (c, start, end) -> new long[]{-c, start + c, end + c},
+                (t, s, points) -> points.add(pack(s + t, t)), crossings);
+        // s = x + y, t = y
+        this.findCrossings(HORIZONTAL, (y, start, end) -> new long[]{y, start + y, end + y},
+                FALLING, (c, start, end) -> new long[]{c, c - end, c - start},
+                (t, s, points) -> points.add(pack(s - t, t)), crossings);
+        // s = x, t = y - x
+        this.findCrossings(RISING, (c, start, end) -> new long[]{c, start, end},
+                VERTICAL, (x, start, end) -> new long[]{x, start - x, end - x},
+                (t, s, points) -> points.add(pack(s, t + s)), crossings);
+        // s = x, t = x + y
+        this.findCrossings(FALLING, (c, start, end) -> new long[]{c, start, end},
+                VERTICAL, (x, start, end) -> new long[]{x, start + x, end + x},
+                (t, s, points) -> points.add(pack(s, t - s)), crossings);
+        // s = x + y, t = y - x
+        this.findCrossings(RISING, (c, start, end) -> new long[]{c, 2 * start + c, 2 * end + c},
+                FALLING, (c, start, end) -> new long[]{c, c - 2 * end, c - 2 * start},
+                (t, s, points) -> {
+                    // A rising and a falling diagonal can cross between two points
+                    if (((s - t) & 1) == 0) {
+                        points.add(pack((s - t) / 2, (s + t) / 2));
+                    }
+                }, crossings);
+
+        long total = this.overlapLength;
+        for (long point : crossings) {
+            long x = point >> 32;
+            long y = (int) point;
+            int overlapping = 0;
+            for (int o = 0; o < 4; o++) {
+                LineGroup group = this.groups.get(o).get(getKey(o, x, y));
+                if (group != null && contains(group.overlaps, getPosition(o, x, y))) {
+                    overlapping++;
+                }
+            }
+            total += overlapping == 0 ? 1 : 1 - overlapping;
+        }
+        return total;
+    }
+
+    /** Packs the coordinates of a point into a long. */
+    private static long pack(long x, long y) {
+        return (x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /** Returns the covered intervals of all the lines of an orientation, mapped to the sweep plane. */
+    private List<long[]> mapIntervals(int orientation, IntervalMapper mapper) {
+        List<long[]> res = new ArrayList<>();
+        for (Map.Entry<Long, LineGroup> entry : this.groups.get(orientation).entrySet()) {
+            long[] covered = entry.getValue().covered;
+            for (int i = 0; i < covered.length; i += 2) {
+                res.add(mapper.map(entry.getKey(), covered[i], covered[i + 1]));
+            }
+        }
+        return res;
+    }
+
+    /** Finds the crossings between the lines of two orientations. The vertical intervals are
+     * visited from left to right, while the horizontal intervals that span the current position
+     * are kept sorted by height, so that those crossing a vertical interval are found by a range
+     * query. */
+    private void findCrossings(int horizontal, IntervalMapper toHorizontal, int vertical,
+                               IntervalMapper toVertical, CrossingMapper mapper, Set<Long> points) {
+        List<long[]> horizontals = this.mapIntervals(horizontal, toHorizontal);
+        List<long[]> verticals = this.mapIntervals(vertical, toVertical);
+        if (horizontals.isEmpty() || verticals.isEmpty()) {
+            return;
+        }
+        List<long[]> byEnd = new ArrayList<>(horizontals);
+        horizontals.sort(Comparator.comparingLong(interval -> interval[1]));
+        byEnd.sort(Comparator.comparingLong(interval -> interval[2]));
+        verticals.sort(Comparator.comparingLong(interval -> interval[0]));
+
+        TreeMap<Long, Integer> active = new TreeMap<>();
+        int added = 0;
+        int removed = 0;
+        for (long[] line : verticals) {
+            while (added < horizontals.size() && horizontals.get(added)[1] <= line[0]) {
+                active.merge(horizontals.get(added++)[0], 1, Integer::sum);
+            }
+            while (removed < byEnd.size() && byEnd.get(removed)[2] < line[0]) {
+                active.computeIfPresent(byEnd.get(removed++)[0], (t, count) -> count == 1 ? null : count - 1);
+            }
+            for (long t : active.subMap(line[1], true, line[2], true).keySet()) {
+                mapper.add(t, line[0], points);
+            }
+        }
+    }
+}
+
 class CoordinatesReader {
 
     private final List<Coordinates> path = new ArrayList<>();
     private int x = 0;
     private int y = 0;
-    private int[][] map;
+    private final GridType type;
+    private VentGrid map;
+
+    /** Creates a reader storing its counts in a dense grid. */
+    public CoordinatesReader() {
+        this(GridType.DENSE);
+    }
+
+    /** Creates a reader storing its counts in the given type of grid. */
+    public CoordinatesReader(GridType type) {
+        this.type = type;
+    }
 
     /** Reads a file and creates a coordinates object for each line. */
     public void readFile (String file){
@@ -74,58 +682,113 @@ class CoordinatesReader {
             for (String line : lines){
                 path.add(new Coordinates (line));
             }
+            // The counts have to be drawn again with the new lines
+            this.map = null;
         }
         catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    /** Creates a matrix representing the grid on which the lines are drawn. The size of the grid
+    /** Creates the grid on which the lines are drawn. The size of a dense grid
      * is computed by taking the highest number for x and y positions. */
     public void createMap() {
+        if (this.type == GridType.SPARSE) {
+            this.map = new SparseGrid();
+            return;
+        }
         for (Coordinates coord : path){
             int[] best = coord.getMaxXAndY();
             this.x = max(this.x, best[0]);
             this.y = max(this.y, best[1]);
         }
-        this.map = new int[this.x + 1][this.y + 1];
+        this.map = this.type == GridType.PACKED ? new PackedGrid(this.x, this.y) : new DenseGrid(this.x, this.y);
     }
 
-    /** Fills the map with counts of the number of times each position is crossed by a line. */
-    public void fillMap(boolean getDiagonal){
+    /** Fills the map with counts of the number of times each position is crossed by a line.
+     * Straight and diagonal lines are counted separately, so both answers come from one pass. */
+    public void fillMap(){
         this.createMap();
         for (Coordinates coord : path){
-            List<List<Integer>> allPoints = coord.getStraightLine(getDiagonal);
-            for (List<Integer> point : allPoints){
-                this.map[point.get(0)][point.get(1)]++;
+            coord.drawLine(this.map);
+        }
+    }
+
+    /** Fills a dense or packed map on several threads. The map is cut into bands of rows, and each thread
+     * draws the part of every line that falls in its own band, so no two threads write to the
+     * same row and no locking is needed. */
+    public void fillMapParallel(int bands){
+        if (this.type == GridType.SPARSE) {
+            throw new IllegalStateException("A sparse grid cannot be filled in parallel");
+        }
+        if (bands < 1) {
+            throw new IllegalArgumentException("The number of bands must be positive : " + bands);
+        }
+        this.createMap();
+        BandedGrid grid = (BandedGrid) this.map;
+        int bandWidth = (grid.getWidth() + bands - 1) / bands;
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            int fromX = band * bandWidth;
+            int toX = Math.min(grid.getWidth(), fromX + bandWidth);
+            for (Coordinates coord : this.path){
+                coord.drawLine(grid, fromX, toX);
             }
+        });
+    }
+
+    /** Same as getAnswer, but fills the map and counts the overlaps of each band of rows
+     * in parallel. The map must be dense or packed. */
+    public long getAnswerParallel(boolean getDiagonal) {
+        if (this.type == GridType.SPARSE) {
+            throw new IllegalStateException("A sparse grid cannot be counted in parallel");
         }
+        int bands = Runtime.getRuntime().availableProcessors() * 4;
+        if (this.map == null) {
+            this.fillMapParallel(bands);
+        }
+        BandedGrid grid = (BandedGrid) this.map;
+        int bandWidth = (grid.getWidth() + bands - 1) / bands;
+        return IntStream.range(0, bands).parallel()
+                .mapToLong(band -> grid.countOverlaps(getDiagonal, Math.min(grid.getWidth(), band * bandWidth),
+                        Math.min(grid.getWidth(), (band + 1) * bandWidth)))
+                .sum();
     }
 
     /** Returns the number of points that are crossed by 2 or more lines. Includes diagonals
      * if the boolean is set to true. */
-    public int getAnswer(boolean getDiagonal) {
-        this.fillMap(getDiagonal);
-        int total = 0;
-        for (int[] row : this.map){
-            for (int val : row){
-                if (val >= 2){
-                    total++;
-                }
-            }
+    public long getAnswer(boolean getDiagonal) {
+        if (this.map == null) {
+            this.fillMap();
         }
-        return total;
+        return this.map.countOverlaps(getDiagonal);
+    }
+
+    /** Builds the index answering how many points are crossed by 2 or more lines in a rectangle.
+     * Includes diagonals if the boolean is set to true. */
+    public DangerIndex buildDangerIndex(boolean getDiagonal) {
+        if (this.map == null) {
+            this.fillMap();
+        }
+        if (!(this.map instanceof BandedGrid)) {
+            throw new IllegalStateException("A sparse grid cannot be indexed");
+        }
+        return new DangerIndex((BandedGrid) this.map, getDiagonal);
+    }
+
+    /** Returns the number of points that are crossed by 2 or more lines, computed from the
+     * lines themselves instead of a grid (see OverlapSweep). Includes diagonals if the boolean
+     * is set to true. */
+    public long getAnswerWithoutGrid(boolean getDiagonal) {
+        return new OverlapSweep(this.path, getDiagonal).countOverlaps();
     }
 
     public static void main(String[] args) {
         CoordinatesReader reader = new CoordinatesReader();
         reader.readFile("day5.txt");
-        int part1 = reader.getAnswer(false);
+        long part1 = reader.getAnswer(false);
         System.out.println("Answer to Part 1 : " + part1);
 
-        CoordinatesReader reader2 = new CoordinatesReader();
-        reader2.readFile("day5.txt");
-        int part2 = reader2.getAnswer(true);
+        long part2 = reader.getAnswer(true);
         System.out.println("Answer to Part 2 : " +part2);
     }
 }
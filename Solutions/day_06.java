@@ -1,17 +1,23 @@
 import java.io.IOException;
+import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /** Class allowing the use of threads to divide the problem into smaller parts. */
-class Parallel implements Runnable{
+class Parallel implements Callable<Long> {
 
     private final int fish;
     private final int days;
     private final RecursiveFish object;
-    public long result;
 
     Parallel(int fish, int days, RecursiveFish object){
         this.object = object;
@@ -20,13 +26,19 @@ class Parallel implements Runnable{
     }
 
     @Override
-    public void run() {
-        this.result = this.object.getResult(this.days, this.fish);
+    public Long call() {
+        return this.object.getResult(this.days, this.fish);
     }
 }
 
 class RecursiveFish {
 
+    // Number of fish born from a fish at 0 within a given number of days. It only depends on the
+    // number of days, so it is shared by all objects and kept between calls.
+    private static final ConcurrentHashMap<Integer, Long> DESCENDANTS = new ConcurrentHashMap<>();
+    // Pool on which the sub-problems are solved, with one thread per core
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
     private int[] schoolOfFish;
     public HashMap<Integer, Integer> typesOfFish = new HashMap<>();
 
@@ -59,57 +71,236 @@ class RecursiveFish {
         }
     }
 
-    /** Recursive function simulating the growth of a school of fish starting with a single type
-     * of fish. Returns the number of existing fish after a given amount of days. */
+    /** Function simulating the growth of a school of fish starting with a single type
+     * of fish. Returns the number of existing fish after a given amount of days. A fish with a timer
+     * of n gives birth after n days exactly like a fish at 0 would after days - n, so only fish at 0
+     * are computed, and their results are memoised. Throws an ArithmeticException if the result
+     * does not fit in a long. */
     public long simulateGrowth(int fish, int days) {
-        if (days == 0){
+        if (days <= fish){
             return 0;
         }
-        else if (fish == 0){
-            return 1 + simulateGrowth(6, days - 1) + simulateGrowth(8, days - 1);
+        else if (fish > 0){
+            return simulateGrowth(0, days - fish);
+        }
+        Long known = DESCENDANTS.get(days);
+        if (known != null){
+            return known;
         }
-        else {
-            return simulateGrowth(fish - 1, days - 1);
+        // Fills the memo from the first day that is missing up to the requested one, instead of
+        // recursing, so the stack does not grow with the number of days. A fish at 0 with d days
+        // left gives birth, then it has d - 7 days left at 0 and its child has d - 9.
+        long result = 0;
+        for (int d = 1; d <= days; d++){
+            Long value = DESCENDANTS.get(d);
+            if (value == null){
+                long parent = d > 7 ? DESCENDANTS.get(d - 7) : 0;
+                long child = d > 9 ? DESCENDANTS.get(d - 9) : 0;
+                try {
+                    value = Math.addExact(1, Math.addExact(parent, child));
+                }
+                catch (ArithmeticException e) {
+                    throw overflow(d);
+                }
+                // Several threads may compute the same value, in which case they store the same value
+                DESCENDANTS.put(d, value);
+            }
+            result = value;
         }
+        return result;
+    }
+
+    /** Creates the exception thrown when a number of fish does not fit in a long. */
+    private static ArithmeticException overflow(int days) {
+        return new ArithmeticException("The number of fish after " + days
+                + " days does not fit in a long, use simulatePopulation instead");
     }
 
     /** Method to get the number of fish born from a specific fish type after a given time period. */
     public long getResult(int days, int fish) {
-        return this.typesOfFish.get(fish) * (1 + simulateGrowth(fish, days));
+        return Math.multiplyExact(this.typesOfFish.get(fish), Math.addExact(1, simulateGrowth(fish, days)));
     }
 
-    /** Creates as many threads as there are different fish types in the original input.
-     * Each thread solves its own sub-problem for the given number of days. The sum of all results
-     * is returned once all the threads have finished running. */
+    /** Creates a task for each of the different fish types in the original input, and solves them
+     * on a pool with one thread per core. Each task solves its own sub-problem for the given number
+     * of days. The sum of all results is returned once all the tasks have finished running. */
     public long solveProblem(int days){
         try {
             List<Parallel> parallels = new ArrayList<>();
-            List<Thread> threads = new ArrayList<>();
             for (int n : this.typesOfFish.keySet()) {
                 parallels.add(new Parallel(n, days, this));
-                threads.add(new Thread(parallels.get(parallels.size() - 1)));
             }
             long result = 0;
-            for (Thread t : threads) {
-                t.start();
-            }
-            for (Thread t : threads) {
-                t.join();
-            }
-            for (Parallel p : parallels){
-                result += p.result;
+            for (Future<Long> f : POOL.invokeAll(parallels)){
+                result = Math.addExact(result, f.get());
             }
             return result;
 
-        } catch ( InterruptedException e) {
+        } catch (ArithmeticException e) {
+            throw overflow(days);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ArithmeticException) {
+                throw overflow(days);
+            }
+            e.printStackTrace();
+        } catch (InterruptedException e) {
             e.printStackTrace();
         }
         return -1;
     }
 
+    /** Simulates the growth of the whole school by counting how many fish have each timer value.
+     * Instead of moving the counts every day, the bucket of the fish at 0 becomes the bucket of
+     * the newborn fish at 8, and its count is added to the fish at 6. The counts are kept as longs
+     * until one would overflow, and as BigIntegers from then on. */
+    public BigInteger simulatePopulation(int days) {
+        long[] buckets = new long[9];
+        for (int fish : this.typesOfFish.keySet()) {
+            buckets[fish] = this.typesOfFish.get(fish);
+        }
+        int first = 0;
+        int day = 0;
+        try {
+            for (; day < days; day++) {
+                // Index of the bucket of the fish at 0 on the current day
+                first = day % 9;
+                buckets[(first + 7) % 9] = Math.addExact(buckets[(first + 7) % 9], buckets[first]);
+            }
+            BigInteger total = BigInteger.ZERO;
+            for (long count : buckets) {
+                total = total.add(BigInteger.valueOf(count));
+            }
+            return total;
+        }
+        catch (ArithmeticException e) {
+            // Goes on from the day that overflowed with arbitrary precision
+            BigInteger[] big = new BigInteger[9];
+            for (int i = 0; i < 9; i++) {
+                big[i] = BigInteger.valueOf(buckets[i]);
+            }
+            for (; day < days; day++) {
+                first = day % 9;
+                big[(first + 7) % 9] = big[(first + 7) % 9].add(big[first]);
+            }
+            BigInteger total = BigInteger.ZERO;
+            for (BigInteger count : big) {
+                total = total.add(count);
+            }
+            return total;
+        }
+    }
+
     public static void main(String[] args) {
         RecursiveFish fish = new RecursiveFish("day6.txt");
-        System.out.println("Answer to Part 1 : " + fish.solveProblem(80));
-        System.out.println("Answer to Part 2 : " + fish.solveProblem(256));
+        System.out.println("Answer to Part 1 : " + fish.simulatePopulation(80));
+        System.out.println("Answer to Part 2 : " + fish.simulatePopulation(256));
+    }
+}
+
+/** Solver counting the fish after any number of days in O(log days) steps. A day of growth is
+ * a linear map on the 9 counts of fish per timer value, i.e. a 9x9 matrix, so the counts after
+ * n days are given by the matrix to the power n, computed by repeated squaring. The counts are
+ * exact, or taken modulo a given number for horizons whose exact counts would be too large. */
+class FishMatrixSolver {
+
+    private static final int TIMERS = 9;
+
+    private final BigInteger[] initial = new BigInteger[TIMERS];
+    private final BigInteger modulus;
+    // The k-th element is the matrix of a day to the power 2^k, kept for later queries
+    private final List<BigInteger[][]> squares = new ArrayList<>();
+
+    /** Creates a solver giving exact counts. */
+    FishMatrixSolver(RecursiveFish fish) {
+        this(fish, null);
+    }
+
+    /** Creates a solver giving counts modulo the given number (exact ones if it is null). */
+    FishMatrixSolver(RecursiveFish fish, BigInteger modulus) {
+        this.modulus = modulus;
+        Arrays.fill(this.initial, BigInteger.ZERO);
+        for (int timer : fish.typesOfFish.keySet()) {
+            this.initial[timer] = this.reduce(BigInteger.valueOf(fish.typesOfFish.get(timer)));
+        }
+        BigInteger[][] day = new BigInteger[TIMERS][TIMERS];
+        for (BigInteger[] row : day) {
+            Arrays.fill(row, BigInteger.ZERO);
+        }
+        // Each timer goes down by one, and the fish at 0 go back to 6 and give birth to fish at 8
+        for (int timer = 0; timer < TIMERS - 1; timer++) {
+            day[timer][timer + 1] = BigInteger.ONE;
+        }
+        day[6][0] = BigInteger.ONE;
+        day[8][0] = BigInteger.ONE;
+        this.squares.add(day);
+    }
+
+    private BigInteger reduce(BigInteger value) {
+        return this.modulus == null ? value : value.mod(this.modulus);
+    }
+
+    /** Returns the matrix of a day to the power 2^k, squaring the previous ones if needed. */
+    private BigInteger[][] getSquare(int k) {
+        while (this.squares.size() <= k) {
+            BigInteger[][] last = this.squares.get(this.squares.size() - 1);
+            BigInteger[][] next = new BigInteger[TIMERS][TIMERS];
+            for (int i = 0; i < TIMERS; i++) {
+                for (int j = 0; j < TIMERS; j++) {
+                    BigInteger total = BigInteger.ZERO;
+                    for (int l = 0; l < TIMERS; l++) {
+                        total = total.add(last[i][l].multiply(last[l][j]));
+                    }
+                    next[i][j] = this.reduce(total);
+                }
+            }
+            this.squares.add(next);
+        }
+        return this.squares.get(k);
+    }
+
+    /** Returns the counts after the given number of additional days. */
+    private BigInteger[] advance(BigInteger[] counts, long days) {
+        for (int k = 0; days >> k != 0; k++) {
+            if (((days >> k) & 1) == 1) {
+                BigInteger[][] matrix = this.getSquare(k);
+                BigInteger[] next = new BigInteger[TIMERS];
+                for (int i = 0; i < TIMERS; i++) {
+                    BigInteger total = BigInteger.ZERO;
+                    for (int j = 0; j < TIMERS; j++) {
+                        total = total.add(matrix[i][j].multiply(counts[j]));
+                    }
+                    next[i] = this.reduce(total);
+                }
+                counts = next;
+            }
+        }
+        return counts;
+    }
+
+    /** Returns the number of fish after the given number of days. */
+    public BigInteger solveProblem(long days) {
+        return this.solveProblems(new long[]{days}).get(0);
+    }
+
+    /** Returns the number of fish after each of the given numbers of days, which must be sorted.
+     * Each answer starts from the counts of the previous one, so only the difference between
+     * two horizons has to be applied, with the matrix powers shared by all queries. */
+    public List<BigInteger> solveProblems(long[] days) {
+        List<BigInteger> res = new ArrayList<>();
+        BigInteger[] counts = this.initial;
+        long previous = 0;
+        for (long horizon : days) {
+            if (horizon < previous) {
+                throw new IllegalArgumentException("The numbers of days must be sorted and positive : " + horizon);
+            }
+            counts = this.advance(counts, horizon - previous);
+            previous = horizon;
+            BigInteger total = BigInteger.ZERO;
+            for (BigInteger count : counts) {
+                total = total.add(count);
+            }
+            res.add(this.reduce(total));
+        }
+        return res;
     }
 }
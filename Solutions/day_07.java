@@ -4,11 +4,27 @@ import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
 
+/** Fuel needed by a crab to move a given number of steps. The search for the best position
+ * assumes the function is convex, i.e. that each step costs at least as much as the previous one. */
+interface CostFunction {
+
+    /** Each step costs 1. */
+    CostFunction CONSTANT = steps -> steps;
+    /** Each step costs 1 more than the previous one. */
+    CostFunction INCREASING = steps -> steps * (steps + 1) / 2;
+
+    long cost(long steps);
+}
+
 class CrabAligner {
 
     private int[] crabs;
     private int lowest;
     private int highest;
+    // prefixCounts[i] and prefixSums[i] hold the number and the sum of the positions below lowest + i
+    private long[] prefixCounts;
+    private long[] prefixSums;
+    private long sumOfSquares;
 
     /** Reads a file and creates an array of integers. */
     public void readPositions(String file){
@@ -16,6 +32,7 @@ class CrabAligner {
             List<String> lines = Files.readAllLines(Paths.get(file));
             String numbers = lines.get(0);
             this.crabs = Arrays.stream(numbers.split(",")).mapToInt(Integer::parseInt).toArray();
+            this.prefixCounts = null;
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -34,29 +51,135 @@ class CrabAligner {
         this.lowest = lowest;
     }
 
-    /** Finds the minimal possible cost, based on a constant or increasing rate (boolean value). */
-    public int minimiseCost(boolean constantRate){
-       this.getHighestAndLowest();
-       int best = Integer.MAX_VALUE;
+    /** Builds the histogram of the positions as prefix counts and sums, so that the total distance
+     * to any position can be found in constant time. */
+    public void buildHistogram(){
+        this.getHighestAndLowest();
+        int range = this.highest - this.lowest + 1;
+        long[] counts = new long[range];
+        this.sumOfSquares = 0;
+        for (int position : this.crabs){
+            counts[position - this.lowest]++;
+            this.sumOfSquares += (long) position * position;
+        }
+        this.prefixCounts = new long[range + 1];
+        this.prefixSums = new long[range + 1];
+        for (int i = 0; i < range; i++){
+            this.prefixCounts[i + 1] = this.prefixCounts[i] + counts[i];
+            this.prefixSums[i + 1] = this.prefixSums[i] + counts[i] * (this.lowest + i);
+        }
+    }
+
+    /** Returns the sum of the distances between each crab and the given position. Positions
+     * outside the range of the crabs have all the crabs on the same side. */
+    private long totalDistance(int target){
+        int i = (int) Math.max(0, Math.min((long) target - this.lowest + 1, this.prefixCounts.length - 1));
+        long n = this.crabs.length;
+        long total = this.prefixSums[this.prefixSums.length - 1];
+        long below = this.prefixCounts[i];
+        long belowSum = this.prefixSums[i];
+        return target * below - belowSum + (total - belowSum) - target * (n - below);
+    }
+
+    /** Returns the cost of moving every crab to the given position, based on a constant or
+     * increasing rate (boolean value). Moving n steps at an increasing rate costs n(n+1)/2, so the
+     * total is half the sum of the squared distances plus the sum of the distances. */
+    public long costAt(int target, boolean constantRate){
+        if (this.prefixCounts == null){
+            this.buildHistogram();
+        }
+        long distance = this.totalDistance(target);
+        if (constantRate){
+            return distance;
+        }
+        long n = this.crabs.length;
+        long total = this.prefixSums[this.prefixSums.length - 1];
+        long squares = this.sumOfSquares - 2L * target * total + (long) target * target * n;
+        return (squares + distance) / 2;
+    }
+
+    /** Finds the minimal possible cost, based on a constant or increasing rate (boolean value).
+     * At a constant rate the best position is the median. At an increasing rate it is within
+     * half a step of the mean, so only the positions around the mean are tried. */
+    public long minimiseCost(boolean constantRate){
+        if (this.prefixCounts == null){
+            this.buildHistogram();
+        }
+        long n = this.crabs.length;
+        if (constantRate){
+            int i = 0;
+            while (2 * this.prefixCounts[i + 1] < n){
+                i++;
+            }
+            return this.costAt(this.lowest + i, true);
+        }
+        long mean = Math.floorDiv(this.prefixSums[this.prefixSums.length - 1], n);
+        long best = Long.MAX_VALUE;
+        for (long target = mean - 1; target <= mean + 2; target++){
+            if (target >= this.lowest && target <= this.highest){
+                best = Math.min(best, this.costAt((int) target, false));
+            }
+        }
+        return best;
+    }
+
+    /** Returns the cost of moving every crab to the given position with any cost function.
+     * Crabs sharing a position are handled together. */
+    public long costAt(int target, CostFunction function){
+        return this.costAt(new int[]{target}, function)[0];
+    }
+
+    /** Returns the cost of moving every crab to each of the given positions. The built-in
+     * functions have closed forms over the prefix sums, so each position costs O(1). For other
+     * functions the histogram is read once for all the positions, the inner loop going over
+     * the positions (one call to the function per position and occupied bin). */
+    public long[] costAt(int[] targets, CostFunction function){
+        if (this.prefixCounts == null){
+            this.buildHistogram();
+        }
+        long[] costs = new long[targets.length];
+        if (function == CostFunction.CONSTANT || function == CostFunction.INCREASING){
+            boolean constantRate = function == CostFunction.CONSTANT;
+            for (int j = 0; j < targets.length; j++){
+                costs[j] = this.costAt(targets[j], constantRate);
+            }
+            return costs;
+        }
+        for (int i = 0; i < this.prefixCounts.length - 1; i++){
+            long count = this.prefixCounts[i + 1] - this.prefixCounts[i];
+            if (count == 0){
+                continue;
+            }
+            int position = this.lowest + i;
+            for (int j = 0; j < targets.length; j++){
+                costs[j] += count * function.cost(Math.abs((long) position - targets[j]));
+            }
+        }
+        return costs;
+    }
 
-       for (int i = this.lowest; i < this.highest; i++){
-           int current = 0;
-           if (constantRate) {
-               for (int position : this.crabs) {
-                   current += Math.abs(position - i);
-               }
-           }
-           else {
-               for (int position : this.crabs) {
-                   int n = Math.abs(position - i);
-                   current += (n * (n+1))/2;
-               }
-           }
-           best = Math.min(best, current);
-       }
-       return best;
+    /** Finds the minimal possible cost with any convex cost function. The total cost is then
+     * convex in the position, so the search narrows the range by comparing the costs of two
+     * neighbouring positions (a ternary search on integers), in O(log range) evaluations. */
+    public long minimiseCost(CostFunction function){
+        if (this.prefixCounts == null){
+            this.buildHistogram();
+        }
+        int low = this.lowest;
+        int high = this.highest;
+        while (low < high){
+            int middle = low + (high - low) / 2;
+            long[] costs = this.costAt(new int[]{middle, middle + 1}, function);
+            if (costs[0] <= costs[1]){
+                high = middle;
+            }
+            else {
+                low = middle + 1;
+            }
+        }
+        return this.costAt(low, function);
     }
-    
+
     public static void main(String[] args) {
         CrabAligner crab = new CrabAligner();
         crab.readPositions("day7.txt");